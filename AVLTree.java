@@ -1,4 +1,8 @@
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 /**
  *
  * AVLTree
@@ -14,6 +18,7 @@ public class AVLTree {
     private AVLNode max;
     private AVLNode root = new AVLNode(0, "", true);
     private boolean is_successor = false; // Used in delete function only, to avoid changing sizes twice
+    private boolean hashed = false; // Whether every node keeps a hash of its subtree, see diff()
 
     /**
      * An empty construction, so we can initialize the fields and the whole tree
@@ -22,6 +27,18 @@ public class AVLTree {
     public AVLTree() {
     }
 
+    /**
+     * public AVLTree(boolean hashed)
+     * <p>
+     * If hashed is true, every node also keeps a hash of its subtree,
+     * which is what diff() needs. It costs one long per node and a bit of
+     * work wherever sizes are updated.
+     */
+
+    public AVLTree(boolean hashed) {
+        this.hashed = hashed;
+    }
+
 
     /**
      * public boolean empty()
@@ -95,10 +112,12 @@ public class AVLTree {
         y.setRight(new AVLNode(0, "", true));
         y.setHeight(0);
         y.setSize(1);
+        update_hash(y);
         while (!x.isNull()) {
             if (Math.abs(x.getLeft().getHeight() - x.getRight().getHeight()) <= 1) {
                 x.setSize(((AVLNode)x.getLeft()).getSize() + ((AVLNode)x.getRight()).getSize() + 1); // Going all the way up to the root anyway
                 x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
+                update_hash(x);
                 x = (AVLNode) x.getParent();
             }
             else {
@@ -202,6 +221,9 @@ public class AVLTree {
                     x.setSize(((AVLNode)x.getLeft()).getSize() + ((AVLNode)x.getRight()).getSize() + 1);
                     x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
                 }
+                // Unlike sizes, hashes are updated on the successor's pass too: the nodes between
+                // the successor's old place and x are only visited on that pass
+                update_hash(x);
                 if (((AVLNode)x.getParent()).isNull() && this.root != x) {
                     this.root = x;
                 }
@@ -263,7 +285,7 @@ public class AVLTree {
      * Left rotate, right rotate, left-right rotate and right-left rotate.
      * The last two happen by calling this function twice: once for the first rotate (R or L),
      * and second for the final rotate.
-     * This function also updates the height and the size of the affected-by-the-rotate nodes.
+     * This function also updates the height, the size and the hash of the affected-by-the-rotate nodes.
      */
 
     public boolean rotate(AVLNode x) {
@@ -294,6 +316,8 @@ public class AVLTree {
                 current_root.setSize(x.getSize() + left_son.getSize() + 1);
                 x.setHeight(Math.max(left_grandson.getHeight(), right_grandson.getHeight()) + 1);
                 current_root.setHeight(Math.max(left_son.getHeight(), x.getHeight()) + 1);
+                update_hash(x);
+                update_hash(current_root);
                 return false;
             } else { // Left rotate, to get to case 1
                 AVLNode current_root = (AVLNode) x.getLeft().getRight();
@@ -311,6 +335,8 @@ public class AVLTree {
                 current_root.setSize(left_son.getSize() + right_son.getSize() + 1);
                 left_son.setHeight(Math.max(left_grandson.getHeight(), right_grandson.getHeight()) + 1);
                 current_root.setHeight(Math.max(right_son.getHeight(), x.getHeight()) + 1);
+                update_hash(left_son);
+                update_hash(current_root);
                 return true;
             }
         } else { // Left/RL rotate
@@ -339,6 +365,8 @@ public class AVLTree {
                 current_root.setSize(x.getSize() + right_son.getSize() + 1);
                 x.setHeight(Math.max(left_grandson.getHeight(), right_grandson.getHeight()) + 1);
                 current_root.setHeight(Math.max(right_son.getHeight(), x.getHeight()) + 1);
+                update_hash(x);
+                update_hash(current_root);
                 return false;
             } else { // Right rotate, to get to case 2
                 AVLNode current_root = (AVLNode) x.getRight().getLeft();
@@ -357,6 +385,8 @@ public class AVLTree {
                 current_root.setSize(left_son.getSize() + right_son.getSize() + 1);
                 right_son.setHeight(Math.max(left_grandson.getHeight(), right_grandson.getHeight()) + 1);
                 current_root.setHeight(Math.max(right_son.getHeight(), x.getHeight()) + 1);
+                update_hash(right_son);
+                update_hash(current_root);
                 return true;
             }
         }
@@ -534,6 +564,167 @@ public class AVLTree {
         return this.root.getSize();
     }
 
+    /**
+     * public int[][] diff(AVLTree other)
+     * <p>
+     * Returns the key ranges in which this tree and other differ, as sorted,
+     * non-overlapping {lo, hi} pairs (both inclusive). A key is in a range if it is
+     * in only one of the trees, or in both with different info.
+     * Subtrees whose hash matches the hash of the same key range in other are skipped,
+     * so the cost grows with the number of differences rather than with the size of the trees.
+     * Both trees must have been constructed with hashing enabled.
+     */
+
+    public int[][] diff(AVLTree other) {
+        if (!this.hashed || !other.hashed) {
+            throw new IllegalStateException("diff needs both trees to be constructed with hashed = true");
+        }
+        List<int[]> ranges = new ArrayList<>();
+        diff_rec(this.root, Integer.MIN_VALUE - 1L, Integer.MAX_VALUE + 1L, other, ranges);
+        return ranges.toArray(new int[0][]);
+    }
+
+    /**
+     * private void diff_rec(AVLNode node, long lo, long hi, AVLTree other, List<int[]> ranges)
+     * <p>
+     * node is the root of a subtree whose keys are all in the open interval (lo, hi).
+     * Adds to ranges the differences between this subtree and the keys of other in (lo, hi).
+     */
+
+    private void diff_rec(AVLNode node, long lo, long hi, AVLTree other, List<int[]> ranges) {
+        if (node.getHash() == other.range_hash(lo, hi)) {
+            return;
+        }
+        long other_first = other.first_key_above(lo);
+        if (node.isNull()) { // Only other has keys here
+            add_range(ranges, other_first, other.last_key_below(hi));
+            return;
+        }
+        if (other_first >= hi) { // Only this tree has keys here
+            add_range(ranges, subtree_min(node).getKey(), subtree_max(node).getKey());
+            return;
+        }
+        diff_rec((AVLNode) node.getLeft(), lo, node.getKey(), other, ranges);
+        if (!Objects.equals(node.getValue(), other.search(node.getKey()))) {
+            add_range(ranges, node.getKey(), node.getKey());
+        }
+        diff_rec((AVLNode) node.getRight(), node.getKey(), hi, other, ranges);
+    }
+
+    private static void add_range(List<int[]> ranges, long lo, long hi) { // Merges with the last range if they touch
+        if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] + 1L >= lo) {
+            int[] last = ranges.get(ranges.size() - 1);
+            last[1] = (int) Math.max(last[1], hi);
+            return;
+        }
+        ranges.add(new int[]{(int) lo, (int) hi});
+    }
+
+    /**
+     * private long range_hash(long lo, long hi)
+     * <p>
+     * Returns the hash of all items with lo < key < hi, in O(log n).
+     * As node hashes are sums, this does not depend on the shape of the tree.
+     */
+
+    private long range_hash(long lo, long hi) {
+        if (lo + 1 >= hi) {
+            return 0;
+        }
+        return hash_below(hi) - hash_below(lo + 1);
+    }
+
+    private long hash_below(long bound) { // The hash of all items with key < bound
+        long hash = 0;
+        AVLNode x = this.root;
+        while (!x.isNull()) {
+            if (x.getKey() < bound) {
+                hash += ((AVLNode) x.getLeft()).getHash() + entry_hash(x.getKey(), x.getValue());
+                x = (AVLNode) x.getRight();
+            } else {
+                x = (AVLNode) x.getLeft();
+            }
+        }
+        return hash;
+    }
+
+    private long first_key_above(long lo) { // Smallest key > lo, or Long.MAX_VALUE if there is none
+        long found = Long.MAX_VALUE;
+        AVLNode x = this.root;
+        while (!x.isNull()) {
+            if (x.getKey() > lo) {
+                found = x.getKey();
+                x = (AVLNode) x.getLeft();
+            } else {
+                x = (AVLNode) x.getRight();
+            }
+        }
+        return found;
+    }
+
+    private long last_key_below(long hi) { // Largest key < hi, or Long.MIN_VALUE if there is none
+        long found = Long.MIN_VALUE;
+        AVLNode x = this.root;
+        while (!x.isNull()) {
+            if (x.getKey() < hi) {
+                found = x.getKey();
+                x = (AVLNode) x.getRight();
+            } else {
+                x = (AVLNode) x.getLeft();
+            }
+        }
+        return found;
+    }
+
+    private AVLNode subtree_min(AVLNode x) {
+        while (!((AVLNode) x.getLeft()).isNull()) {
+            x = (AVLNode) x.getLeft();
+        }
+        return x;
+    }
+
+    private AVLNode subtree_max(AVLNode x) {
+        while (!((AVLNode) x.getRight()).isNull()) {
+            x = (AVLNode) x.getRight();
+        }
+        return x;
+    }
+
+    /**
+     * private void update_hash(AVLNode x)
+     * <p>
+     * Recomputes the hash of x from its item and its children's hashes, if the tree is hashed.
+     * The hash of a subtree is the sum of the hashes of its items, so two trees holding
+     * the same items have the same root hash even if they are shaped differently.
+     */
+
+    private void update_hash(AVLNode x) {
+        if (!this.hashed || x.isNull()) {
+            return;
+        }
+        x.setHash(((AVLNode) x.getLeft()).getHash() + entry_hash(x.getKey(), x.getValue())
+                + ((AVLNode) x.getRight()).getHash());
+    }
+
+    private static long entry_hash(int key, String value) { // A 64-bit mix of the key and every char of the info
+        long h = mix64(key);
+        if (value == null) {
+            return mix64(h ^ -1L); // No length is negative, so null never hashes like a string
+        }
+        h = mix64(h ^ value.length());
+        for (int i = 0; i < value.length(); i++) {
+            h = mix64(h ^ value.charAt(i));
+        }
+        return h;
+    }
+
+    private static long mix64(long h) { // One splitmix64 step
+        h += 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
     /**
      * public int getRoot()
      *
@@ -568,6 +759,7 @@ public class AVLTree {
         x.setLeft(new AVLNode(0, "", true));
         ((AVLNode) x).setSize(1);
         x.setHeight(0);
+        update_hash((AVLNode) x);
         this.min = (AVLNode)x;
         this.max = (AVLNode)x;
     }
@@ -606,6 +798,7 @@ public class AVLTree {
         private IAVLNode parent;
         private int height = 0;
         private int size = 1;
+        private long hash = 0;
         private boolean isNull = false;
 
         public AVLNode(int key, String value, boolean isNull) {
@@ -669,6 +862,15 @@ public class AVLTree {
             }
             return this.size; } // Returns the node's size. If node is a leaf, returns 1
 
+        public void setHash(long hash) {
+            this.hash = hash; } // Sets the hash of the node's subtree
+
+        public long getHash() {
+            if (isNull == true) {
+                return 0;
+            }
+            return this.hash; } // Returns the hash of the node's subtree. If node is "empty", returns 0
+
         public boolean isNull() {
             return this.isNull;
         } // Returns true if this node is "empty" or false otherwise
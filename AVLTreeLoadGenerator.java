@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *
+ * AVLTreeLoadGenerator
+ *
+ * A local load generator for AVLTreeServer.
+ * Opens a number of connections, each of which keeps a window of
+ * pipelined requests in flight, and reports throughput and
+ * p50/p99/p999 latency once the run is over.
+ *
+ * Usage: java AVLTreeLoadGenerator [connections] [depth] [seconds] [write%] [keys] [host:port]
+ * If no host:port is given, an embedded server is started on a free loopback port.
+ *
+ */
+
+public class AVLTreeLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int write_percent = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int keys = args.length > 4 ? Integer.parseInt(args[4]) : 100000;
+
+        AVLTreeServer embedded = null;
+        InetSocketAddress address;
+        if (args.length > 5) {
+            String[] host_port = args[5].split(":");
+            address = new InetSocketAddress(host_port[0], Integer.parseInt(host_port[1]));
+        } else {
+            AVLTree tree = new AVLTree();
+            for (int k = 0; k < keys; k += 2) { // Half of the keys are present, so searches both hit and miss
+                tree.insert(k, "v" + k);
+            }
+            embedded = new AVLTreeServer(tree, 0);
+            new Thread(embedded, "avltree-server").start();
+            address = new InetSocketAddress("127.0.0.1", embedded.getPort());
+        }
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Client[] clients = new Client[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new Client(address, depth, write_percent, keys, deadline, i);
+            threads[i] = new Thread(clients[i], "avltree-client-" + i);
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (embedded != null) {
+            embedded.close();
+        }
+
+        int total = 0;
+        for (Client c : clients) {
+            if (c.error != null) {
+                throw c.error;
+            }
+            total += c.count;
+        }
+        long[] all = new long[total];
+        int i = 0;
+        for (Client c : clients) {
+            System.arraycopy(c.latencies, 0, all, i, c.count);
+            i += c.count;
+        }
+        Arrays.sort(all);
+        System.out.printf("connections=%d depth=%d writes=%d%% requests=%d%n", connections, depth, write_percent, total);
+        System.out.printf("throughput: %.0f req/s%n", total / (elapsed / 1e9));
+        System.out.printf("latency p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999),
+                total == 0 ? 0.0 : all[total - 1] / 1e3);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(i, 0)] / 1e3; // Nanoseconds to microseconds
+    }
+
+    /**
+     * One connection. Sends a window of depth requests, then reads their
+     * responses; the latency of a request is the time from sending its
+     * window until its own response has been read.
+     */
+
+    private static class Client implements Runnable {
+        private final InetSocketAddress address;
+        private final int depth;
+        private final int write_percent;
+        private final int keys;
+        private final long deadline;
+        private final Random random;
+        private long[] latencies = new long[1 << 16];
+        private int count = 0;
+        private Exception error;
+
+        private Client(InetSocketAddress address, int depth, int write_percent, int keys, long deadline, int seed) {
+            this.address = address;
+            this.depth = depth;
+            this.write_percent = write_percent;
+            this.keys = keys;
+            this.deadline = deadline;
+            this.random = new Random(seed);
+        }
+
+        public void run() {
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer out = ByteBuffer.allocate(depth * 64);
+                ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+                while (System.nanoTime() < deadline) {
+                    out.clear();
+                    for (int i = 0; i < depth; i++) {
+                        encode(out);
+                    }
+                    out.flip();
+                    long sent = System.nanoTime();
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    for (int i = 0; i < depth; i++) {
+                        in = read_frame(channel, in);
+                        record(System.nanoTime() - sent);
+                    }
+                }
+            } catch (Exception e) {
+                this.error = e;
+            }
+        }
+
+        private void encode(ByteBuffer out) {
+            int key = random.nextInt(keys);
+            if (random.nextInt(100) < write_percent) {
+                if (random.nextBoolean()) {
+                    byte[] value = ("v" + key).getBytes(StandardCharsets.UTF_8);
+                    out.putInt(9 + value.length);
+                    out.put(AVLTreeServer.OP_INSERT);
+                    out.putInt(key);
+                    out.putInt(value.length);
+                    out.put(value);
+                } else {
+                    out.putInt(5);
+                    out.put(AVLTreeServer.OP_DELETE);
+                    out.putInt(key);
+                }
+            } else {
+                out.putInt(5);
+                out.put(AVLTreeServer.OP_SEARCH);
+                out.putInt(key);
+            }
+        }
+
+        /**
+         * Reads one whole response frame; in holds whatever was read past it.
+         * Returns the (possibly grown) read buffer.
+         */
+
+        private static ByteBuffer read_frame(SocketChannel channel, ByteBuffer in) throws IOException {
+            while (true) {
+                in.flip();
+                if (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (in.remaining() >= 4 + length) {
+                        in.position(in.position() + 4 + length);
+                        in.compact();
+                        return in;
+                    }
+                    if (in.capacity() < 4 + length) {
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                        bigger.put(in);
+                        in = bigger;
+                    } else {
+                        in.compact();
+                    }
+                } else {
+                    in.compact();
+                }
+                if (channel.read(in) < 0) {
+                    throw new IOException("server closed the connection");
+                }
+            }
+        }
+
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ *
+ * AVLTreeServer
+ *
+ * An optional embedded key-value server over an AVLTree.
+ * A single non-blocking NIO selector thread serves all connections.
+ * Clients may pipeline any number of requests per connection; responses
+ * are sent back in the same order the requests were received.
+ * All requests decoded in one selector round are applied to the tree
+ * as one batch, under one critical section (synchronized on the tree).
+ * A connection whose unsent responses pass HIGH_WATER bytes is paused:
+ * its remaining requests are put aside and it is not read from until the
+ * responses drain below LOW_WATER, so a client that does not read its
+ * responses cannot make the server run out of memory.
+ *
+ * Wire format (all integers are big-endian, strings are UTF-8):
+ * request:  [int length][byte op][payload]     (length counts op + payload)
+ * response: [int length][byte status][payload] (length counts status + payload)
+ *
+ * SEARCH  key                   -> OK value | NOT_FOUND
+ * INSERT  key, int len, value   -> OK int (same as AVLTree.insert)
+ * DELETE  key                   -> OK int (same as AVLTree.delete)
+ * MIN, MAX                      -> OK value | NOT_FOUND
+ * RANGE   lo, hi, int limit     -> OK int count, then count x (key, int len, value)
+ *
+ * A RANGE reply holds at most MAX_RANGE items, and stops early once it would pass
+ * MAX_FRAME bytes (it always holds at least one item if there is any); clients page
+ * through larger ranges by asking again from the last key + 1.
+ * Items whose info is null are sent with len = -1 and no value bytes.
+ *
+ */
+
+public class AVLTreeServer implements Runnable, Closeable {
+
+    public static final byte OP_SEARCH = 1;
+    public static final byte OP_INSERT = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_MIN = 4;
+    public static final byte OP_MAX = 5;
+    public static final byte OP_RANGE = 6;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_ERROR = 2;
+
+    public static final int MAX_FRAME = 1 << 20;
+    public static final int MAX_RANGE = 1024; // Most items in one RANGE reply, whatever limit was asked for
+    private static final int HIGH_WATER = 4 * MAX_FRAME; // Unsent bytes at which a connection stops being read
+    private static final int LOW_WATER = MAX_FRAME; // Unsent bytes below which it is read again
+    private static final long ACCEPT_BACKOFF_MS = 100; // How long accepting pauses after it failed
+    private static final int MAX_BATCH = 4096; // Upper bound on requests applied in one critical section
+
+    private final AVLTree tree;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Request> batch = new ArrayList<>();
+    private final LinkedHashSet<Connection> touched = new LinkedHashSet<>();
+    private final List<Connection> resumed = new ArrayList<>(); // Unpaused connections that may hold undecoded frames
+    private long accept_paused_until = 0; // While accepting is paused after a failure, in System.currentTimeMillis() time
+    private volatile boolean running = true;
+
+    /**
+     * public AVLTreeServer(AVLTree tree, int port)
+     * <p>
+     * Binds the server to the given port on all interfaces (0 picks a free port).
+     * The server does not serve anything until run() is called.
+     */
+
+    public AVLTreeServer(AVLTree tree, int port) throws IOException {
+        this.tree = tree;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * public int getPort()
+     * <p>
+     * Returns the port the server is bound to
+     */
+
+    public int getPort() {
+        return this.server.socket().getLocalPort();
+    }
+
+    /**
+     * public void run()
+     * <p>
+     * The selector loop. Runs until close() is called.
+     */
+
+    public void run() {
+        try {
+            while (running) {
+                if (!resumed.isEmpty()) {
+                    selector.selectNow();
+                } else if (accept_paused_until != 0) {
+                    long wait = accept_paused_until - System.currentTimeMillis();
+                    if (wait > 0) {
+                        selector.select(wait);
+                    } else {
+                        selector.selectNow();
+                    }
+                } else {
+                    selector.select();
+                }
+                if (accept_paused_until != 0 && System.currentTimeMillis() >= accept_paused_until) {
+                    accept_paused_until = 0;
+                    server.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) { // E.g. too many open files; the listening socket stays open
+                            System.err.println("AVLTreeServer: accept failed, retrying in " + ACCEPT_BACKOFF_MS + "ms: " + e);
+                            key.interestOps(0);
+                            accept_paused_until = System.currentTimeMillis() + ACCEPT_BACKOFF_MS;
+                        }
+                        continue;
+                    }
+                    try {
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.flush();
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                List<Connection> ready = new ArrayList<>(resumed);
+                resumed.clear();
+                for (Connection conn : ready) {
+                    if (batch.size() + conn.deferred.size() > MAX_BATCH) {
+                        apply_batch();
+                    }
+                    batch.addAll(conn.deferred);
+                    conn.deferred.clear();
+                    try {
+                        conn.decode_frames();
+                    } catch (IOException e) {
+                        conn.key.cancel();
+                        conn.channel.close();
+                    }
+                }
+                apply_batch();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * public void close()
+     * <p>
+     * Stops the selector loop; the listening socket and all connections are closed by it.
+     */
+
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeQuietly() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * private void apply_batch()
+     * <p>
+     * Applies all requests decoded in this selector round, in arrival order,
+     * holding the tree lock once for the whole batch. Then flushes every
+     * connection that got a response.
+     */
+
+    private void apply_batch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        synchronized (tree) {
+            for (Request r : batch) {
+                execute(r);
+            }
+        }
+        batch.clear();
+        for (Connection conn : touched) {
+            try {
+                conn.flush();
+            } catch (IOException e) {
+                conn.key.cancel();
+                try {
+                    conn.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        touched.clear();
+    }
+
+    private void execute(Request r) {
+        Connection c = r.conn;
+        if (c.paused) { // Answered once the connection is resumed, still in order
+            c.deferred.add(r);
+            return;
+        }
+        int start = c.out.position();
+        try {
+            switch (r.op) {
+                case OP_SEARCH:
+                    c.writeValue(tree.search(r.key));
+                    break;
+                case OP_INSERT:
+                    c.writeInt(tree.insert(r.key, r.value));
+                    break;
+                case OP_DELETE:
+                    c.writeInt(tree.delete(r.key));
+                    break;
+                case OP_MIN:
+                    c.writeValue(tree.empty() ? null : tree.min());
+                    break;
+                case OP_MAX:
+                    c.writeValue(tree.empty() ? null : tree.max());
+                    break;
+                case OP_RANGE:
+                    c.writeRange(tree, r.key, r.hi, r.limit);
+                    break;
+                default:
+                    c.writeError();
+            }
+        } catch (RuntimeException e) { // A failing request must not take the whole server down
+            c.out.position(start); // Drops a half-written response, if any
+            c.writeError();
+        }
+        if (c.out.position() > HIGH_WATER) {
+            c.paused = true;
+        }
+        touched.add(c);
+    }
+
+    /**
+     * private static void range_rec(AVLTree.AVLNode node, int lo, int hi, int limit, List<AVLTree.AVLNode> out)
+     * <p>
+     * Adds to out, in key order, up to limit nodes with lo <= key <= hi.
+     * Only descends into subtrees that may contain keys in [lo, hi].
+     */
+
+    private static void range_rec(AVLTree.AVLNode node, int lo, int hi, int limit, List<AVLTree.AVLNode> out) {
+        if (node.isNull() || out.size() >= limit) {
+            return;
+        }
+        if (lo < node.getKey()) {
+            range_rec((AVLTree.AVLNode) node.getLeft(), lo, hi, limit, out);
+        }
+        if (lo <= node.getKey() && node.getKey() <= hi && out.size() < limit) {
+            out.add(node);
+        }
+        if (node.getKey() < hi) {
+            range_rec((AVLTree.AVLNode) node.getRight(), lo, hi, limit, out);
+        }
+    }
+
+    /**
+     * A decoded request, waiting to be applied with the rest of its batch
+     */
+
+    private static class Request {
+        private final Connection conn;
+        private final byte op;
+        private int key; // Also the lower bound of a range
+        private int hi;
+        private int limit;
+        private String value;
+
+        private Request(Connection conn, byte op) {
+            this.conn = conn;
+            this.op = op;
+        }
+    }
+
+    /**
+     * Per-connection state: a read buffer holding partial frames,
+     * and a write buffer holding responses not yet sent.
+     */
+
+    private class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        private ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+        private boolean paused = false; // True while too many responses are waiting to be sent
+        private final ArrayDeque<Request> deferred = new ArrayDeque<>(); // Requests put aside while paused
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                throw new IOException("connection closed");
+            }
+            decode_frames();
+        }
+
+        /**
+         * Decodes the whole frames in the read buffer into the batch,
+         * unless (or until) the connection gets paused. Frames are left in the
+         * buffer while older, deferred requests are waiting, to keep them in order.
+         */
+
+        private void decode_frames() throws IOException {
+            in.flip();
+            while (!paused && deferred.isEmpty() && in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                int end = in.position() + 4 + length;
+                in.position(in.position() + 4);
+                decode(end);
+                in.position(end);
+                if (batch.size() >= MAX_BATCH) {
+                    apply_batch();
+                }
+            }
+            in.compact();
+            if (!in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_FRAME + 4));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        private void decode(int end) throws IOException {
+            Request r = new Request(this, in.get());
+            try {
+                switch (r.op) {
+                    case OP_SEARCH:
+                    case OP_DELETE:
+                        r.key = in.getInt();
+                        break;
+                    case OP_INSERT:
+                        r.key = in.getInt();
+                        int len = in.getInt();
+                        if (len < 0 || in.position() + len > end) {
+                            throw new IOException("bad value length " + len);
+                        }
+                        r.value = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+                        break;
+                    case OP_RANGE:
+                        r.key = in.getInt();
+                        r.hi = in.getInt();
+                        r.limit = in.getInt();
+                        break;
+                    default: // MIN, MAX, or an unknown op which is answered with an error
+                        break;
+                }
+            } catch (java.nio.BufferUnderflowException e) {
+                throw new IOException("truncated frame");
+            }
+            if (in.position() > end) {
+                throw new IOException("truncated frame");
+            }
+            batch.add(r);
+        }
+
+        private void ensure(int n) {
+            if (out.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + n));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+        }
+
+        private void writeInt(int v) {
+            ensure(9);
+            out.putInt(5);
+            out.put(STATUS_OK);
+            out.putInt(v);
+        }
+
+        private void writeValue(String value) {
+            if (value == null) {
+                ensure(5);
+                out.putInt(1);
+                out.put(STATUS_NOT_FOUND);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(9 + bytes.length);
+            out.putInt(5 + bytes.length);
+            out.put(STATUS_OK);
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+
+        private void writeRange(AVLTree tree, int lo, int hi, int limit) {
+            List<AVLTree.AVLNode> nodes = new ArrayList<>();
+            if (!tree.empty() && lo <= hi && limit > 0) {
+                range_rec(tree.getInnerRoot(), lo, hi, Math.min(limit, MAX_RANGE), nodes);
+            }
+            int start = out.position();
+            ensure(9);
+            out.putInt(0); // Length and count are patched below
+            out.put(STATUS_OK);
+            out.putInt(0);
+            int count = 0;
+            for (AVLTree.AVLNode node : nodes) {
+                byte[] bytes = node.getValue() == null ? null : node.getValue().getBytes(StandardCharsets.UTF_8);
+                int item = 8 + (bytes == null ? 0 : bytes.length);
+                if (count > 0 && out.position() - start - 4 + item > MAX_FRAME) {
+                    break;
+                }
+                ensure(item);
+                out.putInt(node.getKey());
+                if (bytes == null) {
+                    out.putInt(-1);
+                } else {
+                    out.putInt(bytes.length);
+                    out.put(bytes);
+                }
+                count++;
+            }
+            out.putInt(start, out.position() - start - 4);
+            out.putInt(start + 5, count);
+        }
+
+        private void writeError() {
+            ensure(5);
+            out.putInt(1);
+            out.put(STATUS_ERROR);
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            if (out.position() > HIGH_WATER) {
+                paused = true;
+            } else if (paused && out.position() < LOW_WATER) {
+                paused = false;
+                resumed.add(this);
+            }
+            if (key.isValid()) {
+                key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (pending ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+    }
+
+    /**
+     * Runs a server over a new, empty AVLTree.
+     * Usage: java AVLTreeServer [port]
+     */
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        AVLTreeServer s = new AVLTreeServer(new AVLTree(), port);
+        System.out.println("AVLTreeServer listening on port " + s.getPort());
+        s.run();
+    }
+}